@@ -0,0 +1,633 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Class <code>PackedPuzzleStore</code> keeps a large collection of 9 by 9
+ * Sudoku puzzles on disk. Each cell is packed into 4 bits so that a
+ * puzzle only takes up 41 bytes, which is followed by a status byte and a
+ * 41 byte slot for the solution of the puzzle. The file is accessed
+ * through memory-mapped segments of at most about a gigabyte each so
+ * that stores with hundreds of millions of puzzles can be read without
+ * ever holding them on the heap.
+ * <br />
+ * Puzzles can be read one at a time by index, scanned in order, or
+ * scanned by several threads at once with each thread taking its own
+ * range of the store. The store can be filled from board files like the
+ * ones in the "examples" folder or from the one-line text format, where
+ * each line has 81 characters with a '0' or '.' for every empty cell.
+ *
+ * @author Michael Davis
+ *
+ */
+public class PackedPuzzleStore {
+	public static final int UNSOLVED = 0; // the puzzle has not been solved yet
+	public static final int SOLVED = 1; // the solution slot holds a solution
+	public static final int NO_SOLUTION = 2; // the puzzle has no solution
+	public static final int CELLS = 81; // the number of cells in a puzzle
+	public static final int PACKED_SIZE = (CELLS + 1) / 2; // bytes per packed grid
+	public static final int RECORD_SIZE = PACKED_SIZE * 2 + 1; // bytes per puzzle
+
+	private static final int MAGIC = 0x53444B50; // "SDKP"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 24; // magic, version, capacity, count
+	private static final int COUNT_OFFSET = 16; // where the count is kept
+	private static final int STATUS_OFFSET = PACKED_SIZE; // offset of the status byte
+	private static final int SOLUTION_OFFSET = PACKED_SIZE + 1; // offset of the solution
+	private static final int SEGMENT_RECORDS = (1 << 30) / RECORD_SIZE; // records per mapping
+
+	private RandomAccessFile file; // the file backing this store
+	private FileChannel channel; // the channel the segments are mapped from
+	private MappedByteBuffer header; // the mapped header of the file
+	private MappedByteBuffer[] segments; // the mapped records of the file
+	private long capacity; // the number of puzzles the file has room for
+	private long count; // the number of puzzles currently in the store
+
+	/*
+	 * Opens the given file and maps all of its segments. The header is
+	 * written if the file is being created, and checked against the
+	 * length of the file if it is being opened. The file is closed again
+	 * if it cannot be used.
+	 */
+	private PackedPuzzleStore(File storeFile, long capacity, boolean create)
+			throws IOException {
+		file = new RandomAccessFile(storeFile, "rw");
+		channel = file.getChannel();
+		try {
+			if (create) {
+				file.setLength(HEADER_SIZE + capacity * RECORD_SIZE);
+			} else if (file.length() < HEADER_SIZE) {
+				// mapping a short file would silently extend it
+				throw new IOException("not a packed puzzle store: " + storeFile);
+			}
+			header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+			if (create) {
+				header.putInt(0, MAGIC);
+				header.putInt(4, VERSION);
+				header.putLong(8, capacity);
+				header.putLong(COUNT_OFFSET, 0);
+			} else if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+				throw new IOException("not a packed puzzle store: " + storeFile);
+			}
+			this.capacity = header.getLong(8);
+			this.count = header.getLong(COUNT_OFFSET);
+			if (this.capacity < 0 || this.count < 0 || this.count > this.capacity
+					|| this.capacity > (Long.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE
+					|| file.length() != HEADER_SIZE + this.capacity * RECORD_SIZE) {
+				throw new IOException("corrupt packed puzzle store: " + storeFile
+						+ "\n\tcapacity=" + this.capacity + " size=" + this.count
+						+ " length=" + file.length());
+			}
+			int numSegments = (int) ((this.capacity + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS);
+			segments = new MappedByteBuffer[numSegments];
+			for (int i = 0; i < numSegments; i++) {
+				long first = (long) i * SEGMENT_RECORDS;
+				long records = Math.min(SEGMENT_RECORDS, this.capacity - first);
+				segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+						HEADER_SIZE + first * RECORD_SIZE, records * RECORD_SIZE);
+			}
+		} catch (IOException e) {
+			channel.close();
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Creates a new, empty store at the given file with room for the
+	 * given number of puzzles. Any file already at that location will be
+	 * overwritten.
+	 * @param storeFile the file that will hold the store
+	 * @param capacity the number of puzzles the store can hold
+	 * @return the new store
+	 * @throws IOException if the file cannot be created or mapped
+	 * @throws IllegalArgumentException if the capacity is negative
+	 */
+	public static PackedPuzzleStore create(File storeFile, long capacity)
+			throws IOException {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("incorrect capacity."
+					+ " please enter a capacity that is at least 0."
+					+ "\n\tcapacity=" + capacity);
+		}
+		return new PackedPuzzleStore(storeFile, capacity, true);
+	}
+
+	/**
+	 * Opens a store that was previously created at the given file.
+	 * @param storeFile the file holding the store
+	 * @return the opened store
+	 * @throws IOException if the file cannot be mapped, is not a store
+	 * or its length does not match its header
+	 */
+	public static PackedPuzzleStore open(File storeFile) throws IOException {
+		if (!storeFile.isFile()) {
+			throw new FileNotFoundException(storeFile.getPath());
+		}
+		return new PackedPuzzleStore(storeFile, 0, false);
+	}
+
+	/**
+	 * Creates a store at the given file holding every puzzle of the given
+	 * one-line text file. Blank lines are skipped.
+	 * @param textFile the file with one puzzle per line
+	 * @param storeFile the file that will hold the store
+	 * @return the new store
+	 * @throws IOException if either file cannot be used or the text file
+	 * changes while it is being imported. The store file is deleted if
+	 * this happens after it has been created.
+	 * @throws IllegalArgumentException if a line is not a puzzle. The
+	 * store file is deleted in this case.
+	 */
+	public static PackedPuzzleStore importText(File textFile, File storeFile)
+			throws IOException {
+		long lines = 0;
+		BufferedReader input = new BufferedReader(new FileReader(textFile));
+		try {
+			String line = input.readLine();
+			while (line != null) {
+				if (line.trim().length() > 0) {
+					lines++;
+				}
+				line = input.readLine();
+			}
+		} finally {
+			input.close();
+		}
+		PackedPuzzleStore store = create(storeFile, lines);
+		input = new BufferedReader(new FileReader(textFile));
+		try {
+			long added = store.addAll(input);
+			if (added != lines) {
+				throw new IOException("the file changed while importing: "
+						+ textFile + "\n\texpected=" + lines + " added=" + added);
+			}
+		} catch (IOException e) {
+			store.discard(storeFile);
+			throw e;
+		} catch (RuntimeException e) {
+			store.discard(storeFile);
+			throw e;
+		} finally {
+			input.close();
+		}
+		return store;
+	}
+
+	/**
+	 * Creates a store at the given file holding the puzzles of the given
+	 * board files, such as the ones in the "examples" folder, in order.
+	 * @param boardFilePaths the paths of the board files to import
+	 * @param storeFile the file that will hold the store
+	 * @return the new store
+	 * @throws IOException if any of the files cannot be used. The store
+	 * file is deleted in this case.
+	 * @throws IllegalArgumentException if a board has a cell that is out
+	 * of range. The store file is deleted in this case.
+	 */
+	public static PackedPuzzleStore importBoards(String[] boardFilePaths,
+			File storeFile) throws IOException {
+		PackedPuzzleStore store = create(storeFile, boardFilePaths.length);
+		try {
+			for (int i = 0; i < boardFilePaths.length; i++) {
+				store.add(SudokuSolver.constructBoard(boardFilePaths[i]));
+			}
+		} catch (IOException e) {
+			store.discard(storeFile);
+			throw e;
+		} catch (RuntimeException e) {
+			store.discard(storeFile);
+			throw e;
+		}
+		return store;
+	}
+
+	/**
+	 * Parses a puzzle written in the one-line text format. The line must
+	 * have 81 cells, each a digit from 1 to 9 or a '0' or '.' for an
+	 * empty cell.
+	 * @param line the line to parse
+	 * @return the board described by the line
+	 * @throws IllegalArgumentException if the line is not a puzzle
+	 */
+	public static SudokuBoard parseLine(String line) {
+		line = line.trim();
+		if (line.length() != CELLS) {
+			throw new IllegalArgumentException("incorrect puzzle line."
+					+ " please enter a line with 81 cells."
+					+ "\n\tline=" + line);
+		}
+		int[][] board = new int[9][9];
+		for (int i = 0; i < CELLS; i++) {
+			char c = line.charAt(i);
+			if (c == '0' || c == '.') {
+				board[i / 9][i % 9] = SudokuBoard.UNASSIGNED;
+			} else if (c >= '1' && c <= '9') {
+				board[i / 9][i % 9] = c - '0';
+			} else {
+				throw new IllegalArgumentException("incorrect puzzle line."
+						+ " cells must be 1-9, '0' or '.'."
+						+ "\n\tline=" + line);
+			}
+		}
+		return new SudokuBoard(board);
+	}
+
+	/**
+	 * Writes the given board in the one-line text format with a '0' for
+	 * every empty cell.
+	 * @param board the board to write
+	 * @return the line describing the board
+	 */
+	public static String formatLine(SudokuBoard board) {
+		StringBuilder line = new StringBuilder(CELLS);
+		for (int row = 1; row <= 9; row++) {
+			for (int col = 1; col <= 9; col++) {
+				int n = board.get(row, col);
+				line.append(n == SudokuBoard.UNASSIGNED ? '0' : (char) ('0' + n));
+			}
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Gets the number of puzzles in this store.
+	 * @return the number of puzzles
+	 */
+	public long size() {
+		return count;
+	}
+
+	/**
+	 * Gets the number of puzzles this store has room for.
+	 * @return the capacity of the store
+	 */
+	public long capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Adds the given board to the end of this store as an unsolved
+	 * puzzle.
+	 * @param board the board to add
+	 * @return the index of the added puzzle
+	 * @throws IllegalStateException if the store is full
+	 * @throws IllegalArgumentException if a cell of the board is neither
+	 * a number from 1 to 9 nor UNASSIGNED
+	 */
+	public synchronized long add(SudokuBoard board) {
+		validateBoard(board);
+		if (count >= capacity) {
+			throw new IllegalStateException("the store is full."
+					+ "\n\tcapacity=" + capacity);
+		}
+		long index = count;
+		writeGrid(index, 0, board);
+		segment(index).put(offset(index) + STATUS_OFFSET, (byte) UNSOLVED);
+		count++;
+		header.putLong(COUNT_OFFSET, count);
+		return index;
+	}
+
+	/**
+	 * Adds every puzzle of the given one-line text input to the end of
+	 * this store. Blank lines are skipped.
+	 * @param input the input with one puzzle per line
+	 * @return the number of puzzles added
+	 * @throws IOException if the input cannot be read
+	 * @throws IllegalStateException if the store becomes full
+	 */
+	public long addAll(BufferedReader input) throws IOException {
+		long added = 0;
+		String line = input.readLine();
+		while (line != null) {
+			if (line.trim().length() > 0) {
+				add(parseLine(line));
+				added++;
+			}
+			line = input.readLine();
+		}
+		return added;
+	}
+
+	/**
+	 * Gets the puzzle at the given index.
+	 * @param index the index of the puzzle
+	 * @return a new board holding the puzzle
+	 * @throws IllegalArgumentException if the index is not in the store
+	 */
+	public SudokuBoard get(long index) {
+		validateIndex(index);
+		return readGrid(index, 0);
+	}
+
+	/**
+	 * Gets the solution of the puzzle at the given index.
+	 * @param index the index of the puzzle
+	 * @return a new board holding the solution, or null if the puzzle
+	 * has not been solved
+	 * @throws IllegalArgumentException if the index is not in the store
+	 */
+	public SudokuBoard getSolution(long index) {
+		if (getStatus(index) != SOLVED) {
+			return null;
+		}
+		return readGrid(index, SOLUTION_OFFSET);
+	}
+
+	/**
+	 * Gets the status of the puzzle at the given index.
+	 * @param index the index of the puzzle
+	 * @return one of UNSOLVED, SOLVED or NO_SOLUTION
+	 * @throws IllegalArgumentException if the index is not in the store
+	 */
+	public int getStatus(long index) {
+		validateIndex(index);
+		return segment(index).get(offset(index) + STATUS_OFFSET);
+	}
+
+	/**
+	 * Stores the given solution for the puzzle at the given index and
+	 * marks it as solved. Different indexes may be written by different
+	 * threads at the same time.
+	 * @param index the index of the puzzle
+	 * @param solution the solved board
+	 * @throws IllegalArgumentException if the index is not in the store
+	 * or a cell of the solution is neither a number from 1 to 9 nor
+	 * UNASSIGNED
+	 */
+	public void setSolution(long index, SudokuBoard solution) {
+		validateIndex(index);
+		validateBoard(solution);
+		writeGrid(index, SOLUTION_OFFSET, solution);
+		segment(index).put(offset(index) + STATUS_OFFSET, (byte) SOLVED);
+	}
+
+	/**
+	 * Marks the puzzle at the given index as having no solution.
+	 * @param index the index of the puzzle
+	 * @throws IllegalArgumentException if the index is not in the store
+	 */
+	public void setNoSolution(long index) {
+		validateIndex(index);
+		segment(index).put(offset(index) + STATUS_OFFSET, (byte) NO_SOLUTION);
+	}
+
+	/**
+	 * Scans the puzzles from the first index up to but not including the
+	 * last index in order, handing each one to the given visitor. The
+	 * cells are unpacked into a single reused array so that the scan does
+	 * not allocate per puzzle.
+	 * @param from the index of the first puzzle to visit
+	 * @param to the index after the last puzzle to visit
+	 * @param visitor the visitor that receives the puzzles
+	 * @throws IllegalArgumentException if the range is not in the store
+	 */
+	public void scan(long from, long to, PuzzleVisitor visitor) {
+		if (from < 0 || to > count || from > to) {
+			throw new IllegalArgumentException("incorrect scan range."
+					+ " please enter a range within the store."
+					+ "\n\tfrom=" + from + " to=" + to + " size=" + count);
+		}
+		byte[] record = new byte[RECORD_SIZE];
+		byte[] cells = new byte[CELLS];
+		long index = from;
+		while (index < to) {
+			int seg = (int) (index / SEGMENT_RECORDS);
+			long segEnd = Math.min(to, (long) (seg + 1) * SEGMENT_RECORDS);
+			// a duplicate has its own position, so concurrent scans of
+			// the same segment do not disturb each other
+			ByteBuffer buffer = segments[seg].duplicate();
+			buffer.position(offset(index));
+			for (; index < segEnd; index++) {
+				buffer.get(record);
+				unpack(record, 0, cells);
+				visitor.visit(index, cells, record[STATUS_OFFSET]);
+			}
+		}
+	}
+
+	/**
+	 * Scans every puzzle in this store in order.
+	 * @param visitor the visitor that receives the puzzles
+	 */
+	public void scan(PuzzleVisitor visitor) {
+		scan(0, count, visitor);
+	}
+
+	/**
+	 * Gets a collection of threads that will each scan their own range of
+	 * this store with the given visitor. The ranges are as even as
+	 * possible and together cover the whole store. The threads will be
+	 * ready to be started by the client and can be waited on with
+	 * <code>SudokuSolver.joinThreads</code>.
+	 * @param parts the number of threads to split the store across
+	 * @param visitor the thread safe visitor that receives the puzzles
+	 * @return the scanning threads
+	 * @throws IllegalArgumentException if parts is less than 1
+	 */
+	public Thread[] getScanners(int parts, final PuzzleVisitor visitor) {
+		if (parts < 1) {
+			throw new IllegalArgumentException("incorrect number of parts."
+					+ " please enter at least 1 part."
+					+ "\n\tparts=" + parts);
+		}
+		final long total = count;
+		Thread[] scanners = new Thread[parts];
+		for (int i = 0; i < parts; i++) {
+			final long from = total * i / parts;
+			final long to = total * (i + 1) / parts;
+			scanners[i] = new Thread(new Runnable() {
+				public void run() {
+					scan(from, to, visitor);
+				}
+			});
+		}
+		return scanners;
+	}
+
+	/**
+	 * Writes every puzzle of this store to the given output in the
+	 * one-line text format. It is assumed that this output is suitable
+	 * and open to be written to.
+	 * @param output the stream to which the puzzles will be written
+	 * @param solutions whether to write the solutions instead of the
+	 * puzzles. Puzzles without a solution are written as they are.
+	 */
+	public void exportText(final PrintStream output, final boolean solutions) {
+		final char[] line = new char[CELLS];
+		final byte[] solution = new byte[CELLS];
+		scan(new PuzzleVisitor() {
+			public void visit(long index, byte[] cells, int status) {
+				byte[] source = cells;
+				if (solutions && status == SOLVED) {
+					readCells(index, SOLUTION_OFFSET, solution);
+					source = solution;
+				}
+				for (int i = 0; i < CELLS; i++) {
+					line[i] = (char) ('0' + source[i]);
+				}
+				output.println(line);
+			}
+		});
+	}
+
+	/**
+	 * Writes the puzzle at the given index to the given output in the
+	 * board file format used by the "examples" folder, one row per line
+	 * with the cells separated by spaces and a 0 for every empty cell.
+	 * The output can be read back by <code>importBoards</code>. It is
+	 * assumed that this output is suitable and open to be written to.
+	 * @param index the index of the puzzle
+	 * @param output the stream to which the board will be written
+	 * @param solution whether to write the solution instead of the
+	 * puzzle. A puzzle without a solution is written as it is.
+	 * @throws IllegalArgumentException if the index is not in the store
+	 */
+	public void exportBoard(long index, PrintStream output, boolean solution) {
+		validateIndex(index);
+		byte[] cells = new byte[CELLS];
+		boolean solved = solution && getStatus(index) == SOLVED;
+		readCells(index, solved ? SOLUTION_OFFSET : 0, cells);
+		for (int row = 0; row < 9; row++) {
+			StringBuilder line = new StringBuilder(17);
+			for (int col = 0; col < 9; col++) {
+				if (col > 0) {
+					line.append(' ');
+				}
+				line.append((char) ('0' + cells[row * 9 + col]));
+			}
+			output.println(line);
+		}
+	}
+
+	/**
+	 * Writes any changes made to this store out to disk.
+	 */
+	public void flush() {
+		header.force();
+		for (int i = 0; i < segments.length; i++) {
+			segments[i].force();
+		}
+	}
+
+	/**
+	 * Flushes and closes this store. The store cannot be used once it
+	 * has been closed.
+	 * @throws IOException if the file cannot be closed
+	 */
+	public void close() throws IOException {
+		flush();
+		channel.close();
+		file.close();
+	}
+
+	/*
+	 * closes a store that failed to import and deletes its file. Errors
+	 * are ignored so that the import error is the one reported
+	 */
+	private void discard(File storeFile) {
+		try {
+			channel.close();
+			file.close();
+		} catch (IOException e) {
+			// the file is being deleted anyway
+		}
+		storeFile.delete();
+	}
+
+	/*
+	 * validates the given index. Throws an IllegalArgumentException if
+	 * the index is not in the store
+	 */
+	private void validateIndex(long index) {
+		if (index < 0 || index >= count) {
+			throw new IllegalArgumentException("incorrect puzzle index."
+					+ " please enter an index that is within the store."
+					+ "\n\tindex=" + index + " size=" + count);
+		}
+	}
+
+	/*
+	 * validates the cells of the given board before any of them are
+	 * packed. Throws an IllegalArgumentException if a cell does not fit
+	 * in a nibble as a digit, which would corrupt the packed grid
+	 */
+	private static void validateBoard(SudokuBoard board) {
+		for (int row = 1; row <= 9; row++) {
+			for (int col = 1; col <= 9; col++) {
+				int n = board.get(row, col);
+				if (n != SudokuBoard.UNASSIGNED && (n <= 0 || n > 9)) {
+					throw new IllegalArgumentException("incorrect cell value."
+							+ " please enter a board with numbers between 1 and 9."
+							+ "\n\trow=" + row + " col=" + col + " n=" + n);
+				}
+			}
+		}
+	}
+
+	// gets the segment holding the puzzle at the given index
+	private MappedByteBuffer segment(long index) {
+		return segments[(int) (index / SEGMENT_RECORDS)];
+	}
+
+	// gets the offset of the puzzle at the given index in its segment
+	private static int offset(long index) {
+		return (int) (index % SEGMENT_RECORDS) * RECORD_SIZE;
+	}
+
+	// reads the grid at the given record offset into the given cells
+	private void readCells(long index, int at, byte[] cells) {
+		MappedByteBuffer buffer = segment(index);
+		int start = offset(index) + at;
+		for (int i = 0; i < CELLS; i++) {
+			int b = buffer.get(start + i / 2);
+			cells[i] = (byte) ((i % 2 == 0) ? (b >> 4) & 0xF : b & 0xF);
+		}
+	}
+
+	// reads the grid at the given record offset as a new board
+	private SudokuBoard readGrid(long index, int at) {
+		byte[] cells = new byte[CELLS];
+		readCells(index, at, cells);
+		int[][] board = new int[9][9];
+		for (int i = 0; i < CELLS; i++) {
+			board[i / 9][i % 9] = (cells[i] == 0) ? SudokuBoard.UNASSIGNED : cells[i];
+		}
+		return new SudokuBoard(board);
+	}
+
+	// packs the given board into the grid at the given record offset
+	private void writeGrid(long index, int at, SudokuBoard board) {
+		MappedByteBuffer buffer = segment(index);
+		int start = offset(index) + at;
+		for (int i = 0; i < PACKED_SIZE; i++) {
+			int high = cell(board, 2 * i);
+			int low = (2 * i + 1 < CELLS) ? cell(board, 2 * i + 1) : 0;
+			buffer.put(start + i, (byte) ((high << 4) | low));
+		}
+	}
+
+	// gets the given row-major cell of the board with 0 for empty
+	private static int cell(SudokuBoard board, int i) {
+		int n = board.get(i / 9 + 1, i % 9 + 1);
+		return (n == SudokuBoard.UNASSIGNED) ? 0 : n;
+	}
+
+	// unpacks the grid starting at the given offset of the record
+	private static void unpack(byte[] record, int at, byte[] cells) {
+		for (int i = 0; i < CELLS - 1; i += 2) {
+			int b = record[at + i / 2];
+			cells[i] = (byte) ((b >> 4) & 0xF);
+			cells[i + 1] = (byte) (b & 0xF);
+		}
+		cells[CELLS - 1] = (byte) ((record[at + PACKED_SIZE - 1] >> 4) & 0xF);
+	}
+}
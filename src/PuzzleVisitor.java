@@ -0,0 +1,24 @@
+/**
+ * Interface <code>PuzzleVisitor</code> is used to receive the puzzles of a
+ * <code>PackedPuzzleStore</code> while it is being scanned. The cell array
+ * handed to the visitor is reused between calls so that a scan does not
+ * allocate anything per puzzle; a visitor that wants to keep the cells
+ * must copy them.
+ *
+ * @author Michael Davis
+ *
+ */
+public interface PuzzleVisitor {
+
+	/**
+	 * Visits a single puzzle of the store. Cells are given in row-major
+	 * order with a 0 for every empty cell. When a store is scanned by
+	 * more than one thread the same visitor will be called concurrently
+	 * and has to be thread safe.
+	 * @param index the index of the puzzle in the store
+	 * @param cells the 81 cells of the puzzle
+	 * @param status the status of the puzzle, one of the status constants
+	 * of <code>PackedPuzzleStore</code>
+	 */
+	public void visit(long index, byte[] cells, int status);
+}
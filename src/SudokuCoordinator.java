@@ -0,0 +1,503 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class <code>SudokuCoordinator</code> solves a batch of puzzles across
+ * several <code>SudokuWorker</code> processes. The batch is split into
+ * shards of consecutive puzzles which the workers pull over TCP one at a
+ * time, so that faster workers simply take more shards. Every shard has
+ * to be acknowledged by the worker it was sent to, and a shard held by a
+ * worker that dies or stops acknowledging is put back to be handed out
+ * again.
+ * <br />
+ * Once there are no shards left to hand out, idle workers steal shards
+ * that are still being solved by other workers and solve them as well.
+ * Whichever copy finishes first is kept and the connection of the worker
+ * still holding the other copy is closed, so a single slow or hung worker
+ * cannot hold up the end of the batch. The results are merged back in the order
+ * of the input and the throughput of each worker is reported.
+ *
+ * @author Michael Davis
+ *
+ */
+public class SudokuCoordinator {
+	public static final int DEFAULT_SHARD_SIZE = 256; // puzzles per shard
+	public static final int MAX_HOLDERS = 2; // workers that may hold one shard
+	public static final int ACK_TIMEOUT = 10000; // ms to wait for an ack
+	public static final int WORKER_EXIT_TIMEOUT = 5000; // ms to wait for a worker to exit
+
+	private String[] puzzles; // the puzzles of the batch in input order
+	private String[] results; // the solution of each puzzle, once known
+	private int[] shardStart; // the first puzzle of each shard
+	private int[] shardEnd; // the puzzle after the last of each shard
+	private int[] holders; // the number of workers holding each shard
+	private long[] assignedAt; // when each shard was last handed out
+	private boolean[] done; // whether each shard has been solved
+	private LinkedList<Integer> pending; // shards waiting to be handed out
+	private int shardsDone; // the number of solved shards
+	private int steals; // the number of shards handed out a second time
+	private int liveWorkers; // the number of workers currently connected
+	private List<WorkerStats> workers; // every worker that has connected
+	private List<WorkerHandler> handlers; // the workers currently connected
+
+	/**
+	 * Constructs a new coordinator for the given batch of puzzles in the
+	 * one-line text format, split into shards of the given size.
+	 * @param puzzles the puzzles to solve
+	 * @param shardSize the number of puzzles in each shard
+	 * @throws IllegalArgumentException if the shard size is less than 1
+	 */
+	public SudokuCoordinator(String[] puzzles, int shardSize) {
+		if (shardSize < 1) {
+			throw new IllegalArgumentException("incorrect shard size."
+					+ " please enter a shard size of at least 1."
+					+ "\n\tshardSize=" + shardSize);
+		}
+		this.puzzles = puzzles;
+		this.results = new String[puzzles.length];
+		int numShards = (puzzles.length + shardSize - 1) / shardSize;
+		shardStart = new int[numShards];
+		shardEnd = new int[numShards];
+		holders = new int[numShards];
+		assignedAt = new long[numShards];
+		done = new boolean[numShards];
+		pending = new LinkedList<Integer>();
+		workers = new ArrayList<WorkerStats>();
+		handlers = new ArrayList<WorkerHandler>();
+		for (int i = 0; i < numShards; i++) {
+			shardStart[i] = i * shardSize;
+			shardEnd[i] = Math.min(puzzles.length, (i + 1) * shardSize);
+			pending.add(i);
+		}
+	}
+
+	/**
+	 * Starts accepting workers on the given server socket. Each worker is
+	 * served by its own thread until the batch is done or the worker is
+	 * lost.
+	 * @param server the socket workers will connect to
+	 */
+	public void listen(final ServerSocket server) {
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						Thread handler = new Thread(new WorkerHandler(server.accept()));
+						handler.setDaemon(true);
+						handler.start();
+					}
+				} catch (IOException e) {
+					return; // the server socket was closed
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Waits for every shard of the batch to be solved and returns the
+	 * results in the order of the input. A puzzle without a solution has
+	 * "-" as its result.
+	 * @param processes the local worker processes, or null if workers
+	 * connect on their own. If every one of them has died while no worker
+	 * is connected, the batch is given up on.
+	 * @return the solutions of the puzzles in input order
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws IllegalStateException if every local worker has died
+	 */
+	public synchronized String[] awaitResults(Process[] processes)
+			throws InterruptedException {
+		while (shardsDone < done.length) {
+			wait(1000);
+			if (shardsDone < done.length && liveWorkers == 0
+					&& processes != null && processes.length > 0
+					&& !anyAlive(processes)) {
+				throw new IllegalStateException("every worker has died with "
+						+ (done.length - shardsDone) + " shards left");
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Prints the number of shards, puzzles and the throughput of each
+	 * worker that connected to this coordinator to the given output.
+	 * @param output the stream to which the report will be written
+	 */
+	public synchronized void printThroughput(PrintStream output) {
+		output.println("shards: " + done.length + ", stolen: " + steals);
+		for (int i = 0; i < workers.size(); i++) {
+			WorkerStats w = workers.get(i);
+			double seconds = w.busyNanos / 1e9;
+			double rate = (seconds > 0) ? w.puzzles / seconds : 0;
+			output.printf("%s: %d shards (%d discarded), %d puzzles, %.3fs busy,"
+					+ " %.1f puzzles/s%s%n", w.name, w.shards, w.discarded,
+					w.puzzles, seconds, rate, w.lost ? ", lost" : "");
+		}
+	}
+
+	/*
+	 * Gets the next shard for a worker, waiting if every unsolved shard
+	 * is already held by as many workers as allowed. Returns -1 once the
+	 * batch is done or the worker has been cancelled.
+	 */
+	private synchronized int nextShard(WorkerHandler handler)
+			throws InterruptedException {
+		while (shardsDone < done.length && !handler.cancelled) {
+			int shard = -1;
+			if (!pending.isEmpty()) {
+				shard = pending.removeFirst();
+			} else {
+				// nothing left to hand out, so steal the shard that has
+				// been held the longest
+				for (int i = 0; i < done.length; i++) {
+					if (!done[i] && holders[i] < MAX_HOLDERS
+							&& (shard < 0 || assignedAt[i] < assignedAt[shard])) {
+						shard = i;
+					}
+				}
+				if (shard >= 0) {
+					steals++;
+				}
+			}
+			if (shard >= 0) {
+				holders[shard]++;
+				assignedAt[shard] = System.nanoTime();
+				handler.shard = shard;
+				return shard;
+			}
+			wait();
+		}
+		return -1;
+	}
+
+	/*
+	 * Stores the results of the shard the given worker is holding unless
+	 * another worker has already solved it. Any other worker still
+	 * holding a copy of the shard is cancelled, since its result would be
+	 * thrown away. Returns whether the results were used.
+	 */
+	private synchronized boolean complete(WorkerHandler handler,
+			String[] shardResults) {
+		int shard = handler.shard;
+		if (shard < 0) {
+			return false; // cancelled while the result was being read
+		}
+		handler.shard = -1;
+		holders[shard]--;
+		if (done[shard]) {
+			return false;
+		}
+		System.arraycopy(shardResults, 0, results, shardStart[shard],
+				shardResults.length);
+		done[shard] = true;
+		shardsDone++;
+		for (int i = 0; i < handlers.size(); i++) {
+			WorkerHandler other = handlers.get(i);
+			if (other.shard == shard) {
+				other.cancel();
+			}
+		}
+		notifyAll();
+		return true;
+	}
+
+	/*
+	 * Gives up a worker's hold on its shard, putting the shard back to be
+	 * handed out next if nobody else is solving it.
+	 */
+	private synchronized void release(WorkerHandler handler) {
+		int shard = handler.shard;
+		if (shard < 0) {
+			return;
+		}
+		handler.shard = -1;
+		holders[shard]--;
+		if (!done[shard] && holders[shard] == 0) {
+			pending.addFirst(shard);
+		}
+		notifyAll();
+	}
+
+	// registers a newly connected worker with the given name
+	private synchronized WorkerStats connect(WorkerHandler handler, String name) {
+		WorkerStats w = new WorkerStats(name);
+		workers.add(w);
+		handlers.add(handler);
+		liveWorkers++;
+		return w;
+	}
+
+	// records that the given worker is no longer connected
+	private synchronized void disconnect(WorkerHandler handler,
+			WorkerStats w, boolean lost) {
+		w.lost = lost;
+		handlers.remove(handler);
+		liveWorkers--;
+		notifyAll();
+	}
+
+	// returns whether any of the given processes is still running
+	private static boolean anyAlive(Process[] processes) {
+		for (int i = 0; i < processes.length; i++) {
+			if (processes[i].isAlive()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Class WorkerStats keeps the counts used to report the throughput
+	 * of a single worker. It is guarded by the coordinator.
+	 */
+	private static class WorkerStats {
+		private String name; // the name the worker connected with
+		private int shards; // the shards the worker solved
+		private int discarded; // solved shards another worker beat it to
+		private long puzzles; // the puzzles the worker solved
+		private long busyNanos; // the time spent on the worker's shards
+		private boolean lost; // whether the worker died before the end
+
+		private WorkerStats(String name) {
+			this.name = name;
+		}
+	}
+
+	/*
+	 * Class WorkerHandler serves a single worker connection. It hands the
+	 * worker shards until the batch is done, and puts back the shard the
+	 * worker was holding if the connection is lost. The connection is
+	 * closed early if another worker solves the shard this one is on.
+	 */
+	private class WorkerHandler implements Runnable {
+		private Socket socket; // the connection to the worker
+		private WorkerStats stats; // the counts for the worker
+		private int shard = -1; // the shard held, guarded by the coordinator
+		private boolean cancelled; // guarded by the coordinator
+
+		private WorkerHandler(Socket socket) {
+			this.socket = socket;
+		}
+
+		/*
+		 * Drops the shard this worker is holding, which another worker has
+		 * already solved, and closes the connection so that a slow or hung
+		 * worker is not waited on. Called with the coordinator locked.
+		 */
+		private void cancel() {
+			holders[shard]--;
+			shard = -1;
+			cancelled = true;
+			stats.discarded++;
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// the worker is being dropped either way
+			}
+		}
+
+		@Override
+		public void run() {
+			int shard = -1;
+			try {
+				BufferedReader in = new BufferedReader(
+						new InputStreamReader(socket.getInputStream()));
+				PrintWriter out = new PrintWriter(socket.getOutputStream());
+				String hello = in.readLine();
+				if (hello == null || !hello.startsWith("HELLO ")) {
+					return;
+				}
+				stats = connect(this, hello.substring(6));
+				shard = nextShard(this);
+				while (shard >= 0) {
+					long start = System.nanoTime();
+					int first = shardStart[shard];
+					int count = shardEnd[shard] - first;
+					out.println("SHARD " + shard + " " + count);
+					for (int i = 0; i < count; i++) {
+						out.println(puzzles[first + i]);
+					}
+					out.flush();
+					socket.setSoTimeout(ACK_TIMEOUT);
+					expect(in.readLine(), "ACK " + shard);
+					socket.setSoTimeout(0);
+					expect(in.readLine(), "RESULT " + shard + " " + count);
+					String[] shardResults = new String[count];
+					for (int i = 0; i < count; i++) {
+						shardResults[i] = in.readLine();
+						if (shardResults[i] == null) {
+							throw new IOException("connection closed mid-result");
+						}
+					}
+					boolean used = complete(this, shardResults);
+					synchronized (SudokuCoordinator.this) {
+						stats.busyNanos += System.nanoTime() - start;
+						stats.puzzles += count;
+						stats.shards++;
+						if (!used && !cancelled) {
+							stats.discarded++;
+						}
+					}
+					shard = nextShard(this);
+				}
+				out.println("DONE");
+				out.flush();
+				disconnect(this, stats, false);
+			} catch (SocketTimeoutException e) {
+				lose(shard, "did not acknowledge shard " + shard);
+			} catch (IOException e) {
+				lose(shard, e.getMessage());
+			} catch (InterruptedException e) {
+				lose(shard, "interrupted");
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// nothing left to do with this worker
+				}
+			}
+		}
+
+		// gives up on the worker and the shard it was holding, unless the
+		// connection was closed because the shard was already solved
+		private void lose(int shard, String reason) {
+			release(this);
+			if (stats == null) {
+				return;
+			}
+			boolean wasCancelled;
+			synchronized (SudokuCoordinator.this) {
+				wasCancelled = cancelled;
+			}
+			if (wasCancelled) {
+				System.out.println("cancelled " + stats.name + ": shard "
+						+ shard + " was solved by another worker");
+				disconnect(this, stats, false);
+			} else {
+				System.out.println("lost " + stats.name + ": " + reason);
+				disconnect(this, stats, true);
+			}
+		}
+
+		// throws an IOException if the line is not the expected one
+		private void expect(String line, String expected) throws IOException {
+			if (!expected.equals(line)) {
+				throw new IOException("expected \"" + expected + "\" but got \""
+						+ line + "\"");
+			}
+		}
+	}
+
+	/**
+	 * Reads the non-blank lines of the given one-line puzzle file.
+	 * @param fileName the path to the file of puzzles
+	 * @return the puzzles in the file in order
+	 * @throws FileNotFoundException if the file cannot be found on disk
+	 */
+	public static String[] readPuzzles(String fileName)
+			throws FileNotFoundException {
+		List<String> lines = new ArrayList<String>();
+		Scanner input = new Scanner(new File(fileName));
+		while (input.hasNextLine()) {
+			String line = input.nextLine().trim();
+			if (line.length() > 0) {
+				lines.add(line);
+			}
+		}
+		input.close();
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	/**
+	 * Starts the given number of local worker processes that connect to
+	 * a coordinator on the given port of this machine. The workers run
+	 * on the same JVM and class path as this program.
+	 * @param count the number of workers to start
+	 * @param port the port the coordinator is listening on
+	 * @return the started processes
+	 * @throws IOException if a process cannot be started
+	 */
+	public static Process[] startLocalWorkers(int count, int port)
+			throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "java";
+		String classPath = System.getProperty("java.class.path");
+		Process[] processes = new Process[count];
+		for (int i = 0; i < count; i++) {
+			ProcessBuilder builder = new ProcessBuilder(java, "-cp", classPath,
+					"SudokuWorker", "localhost", "" + port, "worker-" + (i + 1));
+			builder.inheritIO();
+			processes[i] = builder.start();
+		}
+		return processes;
+	}
+
+	/**
+	 * Solves the puzzles of a one-line puzzle file with a number of local
+	 * worker processes, writing the solutions in input order. Extra
+	 * workers may also connect to the printed port from other machines.
+	 * The arguments are "puzzleFile outputFile workers [shardSize [port]]"
+	 * and an output file of "-" writes to the console.
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 3) {
+			System.out.println("usage: java SudokuCoordinator puzzleFile"
+					+ " outputFile workers [shardSize [port]]");
+			System.exit(1);
+		}
+		String[] puzzles = readPuzzles(args[0]);
+		int numWorkers = Integer.parseInt(args[2]);
+		int shardSize = (args.length > 3) ? Integer.parseInt(args[3]) : DEFAULT_SHARD_SIZE;
+		int port = (args.length > 4) ? Integer.parseInt(args[4]) : 0;
+
+		SudokuCoordinator coordinator = new SudokuCoordinator(puzzles, shardSize);
+		ServerSocket server = new ServerSocket(port);
+		System.out.println("coordinator listening on port " + server.getLocalPort()
+				+ " with " + puzzles.length + " puzzles");
+		coordinator.listen(server);
+		if (puzzles.length == 0) {
+			numWorkers = 0; // the batch is already done
+		}
+		Process[] processes = startLocalWorkers(numWorkers, server.getLocalPort());
+
+		long start = System.nanoTime();
+		String[] results = coordinator.awaitResults(processes);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		server.close();
+
+		PrintStream output = args[1].equals("-") ? System.out
+				: new PrintStream(new File(args[1]));
+		for (int i = 0; i < results.length; i++) {
+			output.println(results[i]);
+		}
+		if (output != System.out) {
+			output.close();
+		}
+		coordinator.printThroughput(System.out);
+		System.out.printf("%d puzzles in %.3fs%n", results.length, seconds);
+		// idle workers are told the batch is done and exit on their own,
+		// but a hung worker has to be stopped
+		for (int i = 0; i < processes.length; i++) {
+			if (!processes[i].waitFor(WORKER_EXIT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				System.out.println("stopping worker-" + (i + 1));
+				processes[i].destroyForcibly();
+			}
+		}
+	}
+}
@@ -0,0 +1,542 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Scanner;
+
+/**
+ * Class <code>SudokuSearch</code> is a backtracking search that does not
+ * use recursion. Instead of the call stack it keeps its frontier in a
+ * preallocated stack holding, for every filled cell, the cell and the
+ * digit currently placed in it, so the next digit to try is always the
+ * one after it. Each step fills the empty cell with the fewest candidates,
+ * which are tracked with one bit mask per row, column and box.
+ * <br />
+ * The search works on any board whose size is a square, from 4 by 4 up to
+ * 25 by 25, and can either stop at the first solution or count all of
+ * them. It can be suspended between any two steps, either by a step limit
+ * or by another thread, written to a compact checkpoint file, and resumed
+ * from that file in another process with the same result.
+ *
+ * @author Michael Davis
+ *
+ */
+public class SudokuSearch {
+	public static final long DEFAULT_CHECKPOINT_NODES = 10000000L; // steps between checkpoints
+
+	private static final int MAGIC = 0x53444B43; // "SDKC"
+	private static final int VERSION = 1;
+	private static final int FULL = -1; // returned by pickCell when no cell is empty
+	private static final int DEAD_END = -2; // returned by pickCell when a cell has no candidates
+
+	private int box; // the width of a box, 3 for a normal board
+	private int size; // the width of the board
+	private int[] givens; // the puzzle, row-major with 0 for empty
+	private int[] grid; // the current state of the board
+	private int[] rowOf, colOf, boxOf; // the row, column and box of each cell
+	private int[] rowMask, colMask, boxMask; // digits used in each unit, bit d-1 for d
+	private int allDigits; // the mask with every digit of the board
+	private int[] stackCell; // the cell filled at each depth
+	private int[] stackDigit; // the digit placed in that cell
+	private int depth; // the number of filled cells on the stack
+	private boolean counting; // whether to count every solution
+	private boolean finished; // whether the search is over
+	private long nodes; // the number of steps taken so far
+	private long solutions; // the number of solutions found so far
+	private int[] firstSolution; // the first solution found, if any
+	private volatile boolean suspendRequested; // set to stop at the next step
+
+	/**
+	 * Constructs a new search of the given puzzle.
+	 * @param puzzle the cells of the board in row-major order with a 0 for
+	 * every empty cell
+	 * @param box the width of a box of the board, so 3 for a 9 by 9 board
+	 * @param counting whether to count every solution rather than stopping
+	 * at the first
+	 * @throws IllegalArgumentException if the box is not between 2 and 5,
+	 * the puzzle is the wrong length or a cell is out of range
+	 */
+	public SudokuSearch(int[] puzzle, int box, boolean counting) {
+		if (box < 2 || box > 5) {
+			throw new IllegalArgumentException("incorrect box width."
+					+ " please enter a box width that is between 2 and 5."
+					+ "\n\tbox=" + box);
+		}
+		this.box = box;
+		this.size = box * box;
+		if (puzzle.length != size * size) {
+			throw new IllegalArgumentException("incorrect puzzle length."
+					+ " please enter a puzzle with " + (size * size) + " cells."
+					+ "\n\tlength=" + puzzle.length);
+		}
+		this.counting = counting;
+		givens = puzzle.clone();
+		grid = new int[givens.length];
+		rowOf = new int[givens.length];
+		colOf = new int[givens.length];
+		boxOf = new int[givens.length];
+		rowMask = new int[size];
+		colMask = new int[size];
+		boxMask = new int[size];
+		allDigits = (1 << size) - 1;
+		int empty = 0;
+		for (int i = 0; i < givens.length; i++) {
+			rowOf[i] = i / size;
+			colOf[i] = i % size;
+			boxOf[i] = rowOf[i] / box * box + colOf[i] / box;
+			if (givens[i] < 0 || givens[i] > size) {
+				throw new IllegalArgumentException("incorrect cell value."
+						+ " please enter values that are between 0 and " + size + "."
+						+ "\n\tcell=" + i + " n=" + givens[i]);
+			} else if (givens[i] == 0) {
+				empty++;
+			} else if ((candidates(i) & (1 << (givens[i] - 1))) == 0) {
+				finished = true; // the givens already clash
+			} else {
+				place(i, givens[i]);
+			}
+		}
+		stackCell = new int[empty];
+		stackDigit = new int[empty];
+	}
+
+	/**
+	 * Constructs a new search of the given 9 by 9 board.
+	 * @param board the board to search
+	 * @param counting whether to count every solution rather than stopping
+	 * at the first
+	 */
+	public SudokuSearch(SudokuBoard board, boolean counting) {
+		this(cellsOf(board), 3, counting);
+	}
+
+	/**
+	 * Runs the search until it is over, the given number of steps has
+	 * been taken or <code>suspend</code> is called. A suspended search can
+	 * be continued by calling this method again or checkpointed.
+	 * @param maxNodes the most steps to take before suspending
+	 * @return true if the search is over, false if it was suspended
+	 */
+	public boolean run(long maxNodes) {
+		long limit = (maxNodes > Long.MAX_VALUE - nodes) ? Long.MAX_VALUE : nodes + maxNodes;
+		while (!finished) {
+			if (suspendRequested || nodes >= limit) {
+				suspendRequested = false;
+				return false;
+			}
+			nodes++;
+			int cell = pickCell();
+			if (cell == FULL) {
+				solutions++;
+				if (firstSolution == null) {
+					firstSolution = grid.clone();
+				}
+				if (!counting) {
+					finished = true;
+					return true;
+				}
+			} else if (cell != DEAD_END) {
+				stackCell[depth] = cell;
+				stackDigit[depth] = 0;
+				depth++;
+			}
+			advance();
+		}
+		return true;
+	}
+
+	/**
+	 * Asks a running search to suspend itself before its next step. This
+	 * may be called from any thread.
+	 */
+	public void suspend() {
+		suspendRequested = true;
+	}
+
+	/**
+	 * Gets whether the search is over.
+	 * @return true if every possibility has been tried, or a solution has
+	 * been found when not counting
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Gets the number of steps the search has taken.
+	 * @return the number of steps
+	 */
+	public long getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Gets the number of solutions found so far. This is the total number
+	 * of solutions once a counting search is finished.
+	 * @return the number of solutions
+	 */
+	public long getSolutionCount() {
+		return solutions;
+	}
+
+	/**
+	 * Gets the first solution that was found.
+	 * @return the cells of the solution in row-major order, or null if no
+	 * solution has been found
+	 */
+	public int[] getSolution() {
+		return (firstSolution == null) ? null : firstSolution.clone();
+	}
+
+	/**
+	 * Gets the first solution that was found as a <code>SudokuBoard</code>.
+	 * Only 9 by 9 searches can be turned into boards.
+	 * @return the solved board, or null if no solution has been found
+	 * @throws IllegalStateException if the board is not 9 by 9
+	 */
+	public SudokuBoard getSolutionBoard() {
+		if (size != 9) {
+			throw new IllegalStateException("only 9 by 9 searches have boards."
+					+ "\n\tsize=" + size);
+		}
+		if (firstSolution == null) {
+			return null;
+		}
+		int[][] board = new int[9][9];
+		for (int i = 0; i < firstSolution.length; i++) {
+			board[i / 9][i % 9] = firstSolution[i];
+		}
+		return new SudokuBoard(board);
+	}
+
+	/**
+	 * Prints the first solution that was found to the given output, or
+	 * that there is none. It is assumed that this output is suitable and
+	 * open to be written to.
+	 * @param output the stream to which the solution will be written
+	 */
+	public void printSolution(PrintStream output) {
+		if (firstSolution == null) {
+			output.println("no solution");
+			return;
+		}
+		int width = ("" + size).length() + 1;
+		for (int row = 0; row < size; row++) {
+			for (int col = 0; col < size; col++) {
+				output.printf("%" + width + "d", firstSolution[row * size + col]);
+			}
+			output.println();
+		}
+	}
+
+	/**
+	 * Gets whether the given search is of the same puzzle in the same
+	 * mode as this one, so that one can stand in for the other, such as
+	 * when resuming from a checkpoint.
+	 * @param other the search to compare with
+	 * @return true if both searches have the same givens and both count
+	 * or both stop at the first solution
+	 */
+	public boolean isSameSearch(SudokuSearch other) {
+		return box == other.box && counting == other.counting
+				&& Arrays.equals(givens, other.givens);
+	}
+
+	/**
+	 * Writes the state of this search to the given file so that it can be
+	 * resumed later with <code>readCheckpoint</code>. The search must not
+	 * be running while it is written. The file is replaced in one step, so
+	 * a crash while writing leaves the previous checkpoint in place.
+	 * <br />
+	 * The checkpoint holds the puzzle, the counters and one cell and digit
+	 * per level of the stack; the rest of the state is rebuilt from these.
+	 * @param checkpointFile the file to write the checkpoint to
+	 * @throws IOException if the file cannot be written
+	 */
+	public void writeCheckpoint(File checkpointFile) throws IOException {
+		File temp = new File(checkpointFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeByte(box);
+			out.writeBoolean(counting);
+			out.writeBoolean(finished);
+			out.writeLong(nodes);
+			out.writeLong(solutions);
+			for (int i = 0; i < givens.length; i++) {
+				out.writeByte(givens[i]);
+			}
+			out.writeShort(depth);
+			for (int i = 0; i < depth; i++) {
+				out.writeShort(stackCell[i]);
+				out.writeByte(stackDigit[i]);
+			}
+			out.writeBoolean(firstSolution != null);
+			if (firstSolution != null) {
+				for (int i = 0; i < firstSolution.length; i++) {
+					out.writeByte(firstSolution[i]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), checkpointFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads a search back from a checkpoint written by
+	 * <code>writeCheckpoint</code>. Running the returned search gives the
+	 * same result the original search would have given.
+	 * @param checkpointFile the file holding the checkpoint
+	 * @return the search, ready to be run
+	 * @throws IOException if the file cannot be read or is not a valid
+	 * checkpoint
+	 */
+	public static SudokuSearch readCheckpoint(File checkpointFile) throws IOException {
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(checkpointFile)));
+		try {
+			if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+				throw new IOException("not a search checkpoint: " + checkpointFile);
+			}
+			int box = in.readByte();
+			if (box < 2 || box > 5) {
+				// checked before the puzzle is allocated from it
+				throw new IOException("corrupt checkpoint: box=" + box);
+			}
+			boolean counting = in.readBoolean();
+			boolean finished = in.readBoolean();
+			long nodes = in.readLong();
+			long solutions = in.readLong();
+			int[] puzzle = new int[box * box * box * box];
+			for (int i = 0; i < puzzle.length; i++) {
+				puzzle[i] = in.readByte();
+			}
+			SudokuSearch search;
+			try {
+				search = new SudokuSearch(puzzle, box, counting);
+			} catch (IllegalArgumentException e) {
+				throw new IOException("corrupt checkpoint: " + e.getMessage());
+			}
+			int depth = in.readShort();
+			if (depth < 0 || depth > search.stackCell.length) {
+				throw new IOException("corrupt checkpoint: depth=" + depth);
+			}
+			// replay the stack to rebuild the board and its masks
+			for (int i = 0; i < depth; i++) {
+				int cell = in.readShort();
+				int n = in.readByte();
+				if (cell < 0 || cell >= puzzle.length || search.grid[cell] != 0
+						|| n <= 0 || n > search.size
+						|| (search.candidates(cell) & (1 << (n - 1))) == 0) {
+					throw new IOException("corrupt checkpoint: cell=" + cell + " n=" + n);
+				}
+				search.place(cell, n);
+				search.stackCell[i] = cell;
+				search.stackDigit[i] = n;
+			}
+			search.depth = depth;
+			search.finished = finished;
+			search.nodes = nodes;
+			search.solutions = solutions;
+			if (in.readBoolean()) {
+				search.firstSolution = new int[puzzle.length];
+				for (int i = 0; i < puzzle.length; i++) {
+					search.firstSolution[i] = in.readByte();
+				}
+			}
+			return search;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads a board of any square size from the given input. The input
+	 * has one row per line with the cells separated by whitespace and a 0
+	 * for every empty cell, like the files in the "examples" folder. The
+	 * number of cells on the first line gives the size of the board.
+	 * @param input the input the board is read from
+	 * @param counting whether to count every solution rather than stopping
+	 * at the first
+	 * @return a new search of the board
+	 * @throws IllegalArgumentException if the input is not a square board
+	 */
+	public static SudokuSearch read(Scanner input, boolean counting) {
+		String first = "";
+		while (first.length() == 0 && input.hasNextLine()) {
+			first = input.nextLine().trim();
+		}
+		String[] row = first.split("\\s+");
+		int size = row.length;
+		int box = (int) Math.round(Math.sqrt(size));
+		if (box * box != size) {
+			throw new IllegalArgumentException("incorrect board size."
+					+ " please enter a board whose width is a square."
+					+ "\n\tsize=" + size);
+		}
+		int[] puzzle = new int[size * size];
+		for (int r = 0; r < size; r++) {
+			if (r > 0) {
+				if (!input.hasNextLine()) {
+					throw new IllegalArgumentException("incorrect board."
+							+ " the board has too few rows.\n\trows=" + r);
+				}
+				row = input.nextLine().trim().split("\\s+");
+			}
+			for (int c = 0; c < size && c < row.length; c++) {
+				puzzle[r * size + c] = Integer.parseInt(row[c]);
+			}
+		}
+		return new SudokuSearch(puzzle, box, counting);
+	}
+
+	/*
+	 * Finds the empty cell with the fewest candidates. Returns FULL if
+	 * there are no empty cells and DEAD_END if a cell has no candidates.
+	 */
+	private int pickCell() {
+		int best = FULL;
+		int bestCount = Integer.MAX_VALUE;
+		for (int i = 0; i < grid.length; i++) {
+			if (grid[i] == 0) {
+				int count = Integer.bitCount(candidates(i));
+				if (count < bestCount) {
+					if (count == 0) {
+						return DEAD_END;
+					}
+					best = i;
+					bestCount = count;
+					if (count == 1) {
+						return best;
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+	/*
+	 * Moves the top of the stack on to its next candidate digit, popping
+	 * levels that have run out. The search is finished once the stack is
+	 * empty.
+	 */
+	private void advance() {
+		while (depth > 0) {
+			int top = depth - 1;
+			int cell = stackCell[top];
+			int n = stackDigit[top];
+			if (n > 0) {
+				remove(cell, n);
+			}
+			// bit n is digit n + 1, so this leaves only the larger digits
+			int next = candidates(cell) & (-1 << n);
+			if (next != 0) {
+				n = Integer.numberOfTrailingZeros(next) + 1;
+				place(cell, n);
+				stackDigit[top] = n;
+				return;
+			}
+			depth--;
+		}
+		finished = true;
+	}
+
+	// gets the digits that can be placed in the given cell as a mask
+	private int candidates(int cell) {
+		return allDigits & ~(rowMask[rowOf[cell]] | colMask[colOf[cell]]
+				| boxMask[boxOf[cell]]);
+	}
+
+	// places the given digit in the given cell
+	private void place(int cell, int n) {
+		int bit = 1 << (n - 1);
+		grid[cell] = n;
+		rowMask[rowOf[cell]] |= bit;
+		colMask[colOf[cell]] |= bit;
+		boxMask[boxOf[cell]] |= bit;
+	}
+
+	// removes the given digit from the given cell
+	private void remove(int cell, int n) {
+		int bit = ~(1 << (n - 1));
+		grid[cell] = 0;
+		rowMask[rowOf[cell]] &= bit;
+		colMask[colOf[cell]] &= bit;
+		boxMask[boxOf[cell]] &= bit;
+	}
+
+	// gets the cells of the given 9 by 9 board with 0 for empty
+	private static int[] cellsOf(SudokuBoard board) {
+		int[] cells = new int[81];
+		for (int row = 1; row <= 9; row++) {
+			for (int col = 1; col <= 9; col++) {
+				int n = board.get(row, col);
+				cells[(row - 1) * 9 + col - 1] = (n == SudokuBoard.UNASSIGNED) ? 0 : n;
+			}
+		}
+		return cells;
+	}
+
+	/**
+	 * Solves or counts the solutions of a board file, checkpointing as it
+	 * goes. If the checkpoint file already exists the search is resumed
+	 * from it instead of starting over, as long as it is a search of the
+	 * same board in the same mode. The arguments are
+	 * "solve|count boardFile checkpointFile [nodesPerCheckpoint]".
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3 || !(args[0].equals("solve") || args[0].equals("count"))) {
+			System.out.println("usage: java SudokuSearch solve|count boardFile"
+					+ " checkpointFile [nodesPerCheckpoint]");
+			System.exit(1);
+		}
+		File checkpointFile = new File(args[2]);
+		long interval = (args.length > 3) ? Long.parseLong(args[3]) : DEFAULT_CHECKPOINT_NODES;
+		if (interval < 1) {
+			System.out.println("nodesPerCheckpoint must be at least 1.");
+			System.out.println("usage: java SudokuSearch solve|count boardFile"
+					+ " checkpointFile [nodesPerCheckpoint]");
+			System.exit(1);
+		}
+		Scanner input = new Scanner(new File(args[1]));
+		SudokuSearch search = read(input, args[0].equals("count"));
+		input.close();
+		if (checkpointFile.isFile()) {
+			SudokuSearch resumed = readCheckpoint(checkpointFile);
+			if (!resumed.isSameSearch(search)) {
+				System.out.println("checkpoint " + checkpointFile + " is not a "
+						+ args[0] + " search of " + args[1] + ". remove it or"
+						+ " use another checkpoint file.");
+				System.exit(1);
+			}
+			search = resumed;
+			System.out.println("resuming after " + search.getNodes() + " steps");
+		}
+		while (!search.run(interval)) {
+			search.writeCheckpoint(checkpointFile);
+			System.out.println("checkpoint at " + search.getNodes() + " steps, "
+					+ search.getSolutionCount() + " solutions");
+		}
+		search.writeCheckpoint(checkpointFile);
+		if (search.counting) {
+			System.out.println(search.getSolutionCount() + " solutions in "
+					+ search.getNodes() + " steps");
+		} else {
+			System.out.println("solved in " + search.getNodes() + " steps");
+			search.printSolution(System.out);
+		}
+	}
+}
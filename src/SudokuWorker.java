@@ -0,0 +1,138 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+
+/**
+ * Class <code>SudokuWorker</code> is a worker process for the
+ * <code>SudokuCoordinator</code>. It connects to a coordinator over TCP,
+ * solves the shards of puzzles it is handed one after another, and sends
+ * each shard's solutions back until the coordinator says the batch is
+ * done.
+ * <br />
+ * The protocol is line based. The worker opens with "HELLO name". The
+ * coordinator sends "SHARD id count" followed by count puzzles in the
+ * one-line text format, which the worker acknowledges with "ACK id" and
+ * answers with "RESULT id count" followed by one line per puzzle holding
+ * either its solution or "-" if it has none. The coordinator ends the
+ * session with "DONE".
+ *
+ * @author Michael Davis
+ *
+ */
+public class SudokuWorker {
+	public static final String NO_SOLUTION = "-"; // sent for unsolvable puzzles
+
+	private String name; // the name this worker reports to the coordinator
+
+	/**
+	 * Constructs a new worker with the given name.
+	 * @param name the name reported to the coordinator
+	 */
+	public SudokuWorker(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Connects to the coordinator at the given host and port and solves
+	 * shards until the coordinator ends the session.
+	 * @param host the host the coordinator is listening on
+	 * @param port the port the coordinator is listening on
+	 * @return the number of shards this worker solved
+	 * @throws IOException if the connection fails or is closed before
+	 * the coordinator ends the session
+	 */
+	public int work(String host, int port) throws IOException {
+		Socket socket = new Socket(host, port);
+		try {
+			BufferedReader in = new BufferedReader(
+					new InputStreamReader(socket.getInputStream()));
+			PrintWriter out = new PrintWriter(socket.getOutputStream());
+			out.println("HELLO " + name);
+			out.flush();
+			int shards = 0;
+			String line = in.readLine();
+			while (line != null && line.startsWith("SHARD ")) {
+				String[] parts = line.split(" ");
+				int id;
+				int count;
+				try {
+					id = Integer.parseInt(parts[1]);
+					count = Integer.parseInt(parts[2]);
+				} catch (RuntimeException e) {
+					throw new IOException("malformed shard header: " + line);
+				}
+				if (parts.length != 3 || count < 0) {
+					throw new IOException("malformed shard header: " + line);
+				}
+				// read the whole shard before acknowledging it
+				String[] puzzles = new String[count];
+				for (int i = 0; i < count; i++) {
+					puzzles[i] = in.readLine();
+					if (puzzles[i] == null) {
+						throw new IOException("coordinator closed the connection");
+					}
+				}
+				out.println("ACK " + id);
+				out.flush();
+				out.println("RESULT " + id + " " + count);
+				for (int i = 0; i < count; i++) {
+					out.println(solve(puzzles[i]));
+				}
+				out.flush();
+				shards++;
+				line = in.readLine();
+			}
+			if (line == null) {
+				throw new IOException("coordinator closed the connection");
+			} else if (!line.equals("DONE")) {
+				throw new IOException("unexpected line from coordinator: " + line);
+			}
+			return shards;
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Solves the puzzle written in the one-line text format.
+	 * @param puzzle the puzzle to solve
+	 * @return the solution in the one-line text format, or "-" if the
+	 * puzzle has no solution or cannot be read
+	 */
+	public static String solve(String puzzle) {
+		SudokuBoard board;
+		try {
+			board = PackedPuzzleStore.parseLine(puzzle);
+		} catch (IllegalArgumentException e) {
+			return NO_SOLUTION;
+		}
+		SudokuSearch search = new SudokuSearch(board, false);
+		search.run(Long.MAX_VALUE);
+		SudokuBoard solution = search.getSolutionBoard();
+		if (solution != null) {
+			return PackedPuzzleStore.formatLine(solution);
+		}
+		return NO_SOLUTION;
+	}
+
+	/**
+	 * Runs a worker that connects to the coordinator given on the
+	 * command line as "host port [name]".
+	 * @param args the host, port and optional name of the worker
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out.println("usage: java SudokuWorker host port [name]");
+			System.exit(1);
+		}
+		String name = (args.length > 2) ? args[2] : "worker";
+		try {
+			new SudokuWorker(name).work(args[0], Integer.parseInt(args[1]));
+		} catch (IOException e) {
+			System.out.println(name + ": " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}